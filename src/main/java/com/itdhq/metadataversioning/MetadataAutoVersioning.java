@@ -17,6 +17,7 @@ import org.alfresco.repo.copy.CopyServicePolicies;
 import org.alfresco.repo.copy.DefaultCopyBehaviourCallback;
 import org.alfresco.repo.dictionary.DictionaryDAO;
 import org.alfresco.repo.dictionary.DictionaryListener;
+import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.lock.LockUtils;
 import org.alfresco.repo.node.NodeServicePolicies;
 import org.alfresco.repo.node.NodeServicePolicies.OnUpdatePropertiesPolicy;
@@ -25,7 +26,6 @@ import org.alfresco.repo.policy.JavaBehaviour;
 import org.alfresco.repo.policy.PolicyComponent;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
-import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
 import org.alfresco.repo.version.VersionModel;
 import org.alfresco.repo.version.VersionServicePolicies;
 import org.alfresco.service.cmr.lock.LockService;
@@ -40,7 +40,7 @@ import org.alfresco.service.cmr.version.VersionType;
 import org.alfresco.service.namespace.NamespacePrefixResolver;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
-import org.alfresco.util.EqualsHelper;
+import org.alfresco.util.Pair;
 import org.springframework.extensions.surf.util.I18NUtil;
 import org.apache.log4j.Logger;
 import org.springframework.util.Assert;
@@ -68,11 +68,9 @@ public class MetadataAutoVersioning
     private static final String MSG_AUTO_VERSION = "create_version.auto_version";
     private static final String MSG_AUTO_VERSION_PROPS = "create_version.auto_version_props";
 
-    /** Transaction resource key */
-    private static final String KEY_VERSIONED_NODEREFS = "versioned_noderefs";
-
     private PolicyComponent policyComponent;
     private NodeService nodeService;
+    private NodeDAO nodeDAO;
     private LockService lockService;
     private VersionService versionService;
     private DictionaryDAO dictionaryDAO;
@@ -97,9 +95,13 @@ public class MetadataAutoVersioning
     private Set<QName> excludedOnUpdateAssocsQNames = Collections.emptySet();
     private Set<QName> excludedOnUpdateChildAssocsQNames = Collections.emptySet();
 
+    /** Type-aware comparison of property values, rebuilt on every dictionary (re)load */
+    private PropertyValueComparatorRegistry propertyValueComparators;
+
     public void setPolicyComponent(PolicyComponent policyComponent) { this.policyComponent = policyComponent; }
     public void setVersionService(VersionService versionService) { this.versionService = versionService; }
     public void setNodeService(NodeService nodeService) { this.nodeService = nodeService; }
+    public void setNodeDAO(NodeDAO nodeDAO) { this.nodeDAO = nodeDAO; }
     public void setLockService(LockService lockService) { this.lockService = lockService; }
     public void setDictionaryDAO(DictionaryDAO dictionaryDAO) { this.dictionaryDAO = dictionaryDAO; }
     public void setNamespacePrefixResolver(NamespacePrefixResolver namespacePrefixResolver) { this.namespacePrefixResolver = namespacePrefixResolver; }
@@ -203,6 +205,7 @@ public class MetadataAutoVersioning
                 ContentModel.ASPECT_VERSIONABLE,
                 new JavaBehaviour(this, "getCopyCallback"));
 
+        this.propertyValueComparators = new PropertyValueComparatorRegistry(this.dictionaryDAO);
         this.dictionaryDAO.registerListener(this);
     }
 
@@ -242,7 +245,7 @@ public class MetadataAutoVersioning
 
             if ((true == autoVersionAssocs) && (true == autoVersion) && (true == customAutoVersioning)
                     && (!excludedOnUpdateAssocsQNames.contains(associationRef.getTypeQName()))) {
-                associationAutoVersioning(sourceAssocNode);
+                associationAutoVersioning(sourceAssocNode, VersionTrigger.ASSOCIATIONS);
             }
         } else {
             throw new AlfrescoRuntimeException("Can't find source Node");
@@ -265,7 +268,7 @@ public class MetadataAutoVersioning
 
             if ((true == autoVersionAssocs) && (true == autoVersion) && (true == customAutoVersioning)
                     && (!excludedOnUpdateAssocsQNames.contains(associationRef.getTypeQName()))) {
-                associationAutoVersioning(sourceAssocNode);
+                associationAutoVersioning(sourceAssocNode, VersionTrigger.ASSOCIATIONS);
             }
         } else {
             throw new AlfrescoRuntimeException("Can't find source Node");
@@ -287,7 +290,7 @@ public class MetadataAutoVersioning
 
             if ((true == autoVersionChildAssocs) && (true == autoVersion) && (true == customAutoVersioning)
                     && (!excludedOnUpdateAssocsQNames.contains(childAssociationRef.getTypeQName()))) {
-                associationAutoVersioning(parentAssocNode);
+                associationAutoVersioning(parentAssocNode, VersionTrigger.CHILD_ASSOCIATIONS);
             }
         } else {
             throw new AlfrescoRuntimeException("Can't find parent Node");
@@ -309,14 +312,14 @@ public class MetadataAutoVersioning
 
             if ((true == autoVersionChildAssocs) && (true == autoVersion) && (true == customAutoVersioning)
                     && (!excludedOnUpdateAssocsQNames.contains(childAssociationRef.getTypeQName()))) {
-                associationAutoVersioning(parentAssocNode);
+                associationAutoVersioning(parentAssocNode, VersionTrigger.CHILD_ASSOCIATIONS);
             }
         } else {
             throw new AlfrescoRuntimeException("Can't find parent Node");
         }
     }
 
-    private void associationAutoVersioning(NodeRef assocNode)
+    private void associationAutoVersioning(NodeRef assocNode, VersionTrigger trigger)
     {
 
         VersionHistory versionHistory = versionService.getVersionHistory(assocNode);
@@ -331,7 +334,7 @@ public class MetadataAutoVersioning
             versionProperties.put(Version.PROP_DESCRIPTION, I18NUtil.getMessage(MSG_AUTO_VERSION_PROPS));
             versionProperties.put(VersionModel.PROP_VERSION_TYPE, VersionType.MINOR);
 
-            createVersionImpl(assocNode, versionProperties);
+            createVersionImpl(assocNode, versionProperties, trigger);
         }
     }
 
@@ -427,28 +430,36 @@ public class MetadataAutoVersioning
 
             if (initialVersion == true)
             {
-                @SuppressWarnings("unchecked")
-                Map<NodeRef, NodeRef> versionedNodeRefs = (Map<NodeRef, NodeRef>) AlfrescoTransactionSupport.getResource(KEY_VERSIONED_NODEREFS);
-                if (versionedNodeRefs == null || versionedNodeRefs.containsKey(nodeRef) == false)
+                if (isVersionedInTransaction(nodeRef) == false)
                 {
-                    // Create the initial-version
-                    Map<String, Serializable> versionProperties = new HashMap<String, Serializable>(1);
-
-                    // If a major version is requested, indicate it in the versionProperties map
-                    String versionType = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_VERSION_TYPE);
-                    if (versionType == null  || !versionType.equals(VersionType.MINOR.toString()))
-                    {
-                        versionProperties.put(VersionModel.PROP_VERSION_TYPE, VersionType.MAJOR);
-                    }
-
-                    versionProperties.put(Version.PROP_DESCRIPTION, I18NUtil.getMessage(MSG_INITIAL_VERSION));
-
-                    createVersionImpl(nodeRef, versionProperties);
+                    createInitialVersion(nodeRef);
                 }
             }
         }
     }
 
+    /**
+     * Creates the initial version of a versionable node, honouring <b>cm:versionType</b>.
+     * Also used by {@link VersionableNodesReconciler} for nodes that missed {@link #onAddAspect}.
+     *
+     * @param nodeRef NodeRef
+     */
+    public void createInitialVersion(NodeRef nodeRef)
+    {
+        Map<String, Serializable> versionProperties = new HashMap<String, Serializable>(2);
+
+        // If a major version is requested, indicate it in the versionProperties map
+        String versionType = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_VERSION_TYPE);
+        if (versionType == null  || !versionType.equals(VersionType.MINOR.toString()))
+        {
+            versionProperties.put(VersionModel.PROP_VERSION_TYPE, VersionType.MAJOR);
+        }
+
+        versionProperties.put(Version.PROP_DESCRIPTION, I18NUtil.getMessage(MSG_INITIAL_VERSION));
+
+        createVersionImpl(nodeRef, versionProperties, VersionTrigger.INITIAL);
+    }
+
     /**
      * @see org.alfresco.repo.node.NodeServicePolicies.OnRemoveAspectPolicy#onRemoveAspect(org.alfresco.service.cmr.repository.NodeRef, org.alfresco.service.namespace.QName)
      */
@@ -463,15 +474,13 @@ public class MetadataAutoVersioning
      *
      * If applicable and "cm:autoVersion" is TRUE then version the node on content update (even if no property updates)
      */
-    @SuppressWarnings({ "unchecked", "rawtypes" })
     public void onContentUpdate(NodeRef nodeRef, boolean newContent)
     {
         if (this.nodeService.exists(nodeRef) == true &&
                 this.nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE) == true &&
                 this.nodeService.hasAspect(nodeRef, ContentModel.ASPECT_TEMPORARY) == false)
         {
-            Map<NodeRef, NodeRef> versionedNodeRefs = (Map)AlfrescoTransactionSupport.getResource(KEY_VERSIONED_NODEREFS);
-            if (versionedNodeRefs == null || versionedNodeRefs.containsKey(nodeRef) == false)
+            if (isVersionedInTransaction(nodeRef) == false)
             {
                 // Determine whether the node is auto versionable (for content updates) or not
                 boolean autoVersion = false;
@@ -491,7 +500,7 @@ public class MetadataAutoVersioning
                     // FUCK! What is it?
                     versionProperties.put(VersionModel.PROP_VERSION_TYPE, VersionType.MINOR);
 
-                    createVersionImpl(nodeRef, versionProperties);
+                    createVersionImpl(nodeRef, versionProperties, VersionTrigger.CONTENT);
                 }
             }
         }
@@ -504,7 +513,6 @@ public class MetadataAutoVersioning
      *
      * @since 3.2
      */
-    @SuppressWarnings({ "unchecked", "rawtypes" })
     public void onUpdateProperties(
             NodeRef nodeRef,
             Map<QName, Serializable> before,
@@ -519,9 +527,14 @@ public class MetadataAutoVersioning
             onUpdatePropertiesBehaviour.disable();
             try
             {
-                Map<NodeRef, NodeRef> versionedNodeRefs = (Map)AlfrescoTransactionSupport.getResource(KEY_VERSIONED_NODEREFS);
-                if (versionedNodeRefs == null || versionedNodeRefs.containsKey(nodeRef) == false)
+                if (isVersionedInTransaction(nodeRef) == false)
                 {
+                    // Nothing but re-saved or excluded values, no property-triggered version on any path
+                    if (findDiffProps(before, after) == 0)
+                    {
+                        return;
+                    }
+
                     // Determine whether the node is auto versionable (for property only updates) or not
                     // From here its mine (for symmetry)
                     boolean autoVersion = false;
@@ -546,22 +559,12 @@ public class MetadataAutoVersioning
                         logger.debug("Custom versioning.");
                         // logger.info("Before : " + before.toString());
                         // logger.info("After : " + after.toString());
-                        // Check for explicitly excluded props - if one or more excluded props changes then do not auto-version on this event (even if other props changed)
-                        if (excludedOnUpdatePropQNames.size() > 0)
-                        {
-                            // From here its mine
-                            if (findDiffProps(before, after) == 0) {
-                                return;
-                            }
-                            // To here
-                            // drop through and auto-version
-                        }
                         // Create the auto-version
                         Map<String, Serializable> versionProperties = new HashMap<String, Serializable>(4);
                         versionProperties.put(Version.PROP_DESCRIPTION, I18NUtil.getMessage(MSG_AUTO_VERSION_PROPS));
                         versionProperties.put(VersionModel.PROP_VERSION_TYPE, VersionType.MINOR);
 
-                        createVersionImpl(nodeRef, versionProperties);
+                        createVersionImpl(nodeRef, versionProperties, VersionTrigger.PROPERTIES);
                     } else
                     if ((autoVersionProps == true) && (false == customAutoVersioning))
                     {
@@ -576,7 +579,7 @@ public class MetadataAutoVersioning
                                 Serializable beforeValue = before.get(prop);
                                 Serializable afterValue = after.get(prop);
 
-                                if (EqualsHelper.nullSafeEquals(beforeValue, afterValue) != true) {
+                                if (propertyValueComparators.isEqual(prop, beforeValue, afterValue) != true) {
                                     return;
                                 }
                             }
@@ -588,7 +591,7 @@ public class MetadataAutoVersioning
                     versionProperties.put(Version.PROP_DESCRIPTION, I18NUtil.getMessage(MSG_AUTO_VERSION_PROPS));
                     versionProperties.put(VersionModel.PROP_VERSION_TYPE, VersionType.MINOR);
 
-                    createVersionImpl(nodeRef, versionProperties);
+                    createVersionImpl(nodeRef, versionProperties, VersionTrigger.PROPERTIES);
 
                 }
             }
@@ -614,7 +617,7 @@ public class MetadataAutoVersioning
             Serializable beforeValue = before.get(prop);
             Serializable afterValue = after.get(prop);
 
-            if (EqualsHelper.nullSafeEquals(beforeValue, afterValue) != true)
+            if (propertyValueComparators.isEqual(prop, beforeValue, afterValue) != true)
             {
                 ++diffCount;
             }
@@ -628,9 +631,11 @@ public class MetadataAutoVersioning
      *
      * @param nodeRef NodeRef
      * @param versionProperties Map<String, Serializable>
+     * @param trigger VersionTrigger stored with the version for history listings
      */
-    private void createVersionImpl(NodeRef nodeRef, Map<String, Serializable> versionProperties)
+    private void createVersionImpl(NodeRef nodeRef, Map<String, Serializable> versionProperties, VersionTrigger trigger)
     {
+        versionProperties.put(VersionTrigger.PROP_VERSION_TRIGGER, trigger.name());
         final VersionService vs = this.versionService;
         final NodeRef nf = nodeRef;
         final Map<String, Serializable> vp = versionProperties;
@@ -668,16 +673,28 @@ public class MetadataAutoVersioning
         recordCreateVersion(versionableNode, version);
     }
 
-    @SuppressWarnings("unchecked")
     private void recordCreateVersion(NodeRef versionableNode, Version version)
     {
-        Map<NodeRef, NodeRef> versionedNodeRefs = (Map<NodeRef, NodeRef>)AlfrescoTransactionSupport.getResource(KEY_VERSIONED_NODEREFS);
-        if (versionedNodeRefs == null)
-        {
-            versionedNodeRefs = new HashMap<NodeRef, NodeRef>();
-            AlfrescoTransactionSupport.bindResource(KEY_VERSIONED_NODEREFS, versionedNodeRefs);
-        }
-        versionedNodeRefs.put(versionableNode, versionableNode);
+        VersionedNodeSet.getOrCreate().add(getNodeId(versionableNode), versionableNode);
+    }
+
+    /**
+     * @param nodeRef NodeRef
+     * @return          true if the node was already versioned in the current transaction
+     */
+    private boolean isVersionedInTransaction(NodeRef nodeRef)
+    {
+        VersionedNodeSet versionedNodes = VersionedNodeSet.get();
+        return versionedNodes != null && versionedNodes.contains(getNodeId(nodeRef), nodeRef);
+    }
+
+    /**
+     * @return          the node database id or null if the node is unknown
+     */
+    private Long getNodeId(NodeRef nodeRef)
+    {
+        Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(nodeRef);
+        return (nodePair == null) ? null : nodePair.getFirst();
     }
 
     /*
@@ -694,6 +711,7 @@ public class MetadataAutoVersioning
     @Override
     public void afterDictionaryInit()
     {
+        this.propertyValueComparators = new PropertyValueComparatorRegistry(this.dictionaryDAO);
         this.excludedOnUpdatePropQNames = new HashSet<QName>(this.excludedOnUpdateProps.size() * 2);
         this.excludedOnUpdateAssocsQNames = new HashSet<>();
         this.excludedOnUpdateChildAssocsQNames = new HashSet<>();
@@ -0,0 +1,234 @@
+package com.itdhq.metadataversioning;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.alfresco.repo.dictionary.DictionaryDAO;
+import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
+import org.alfresco.service.cmr.dictionary.PropertyDefinition;
+import org.alfresco.service.cmr.repository.MLText;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.EqualsHelper;
+
+/**
+ * Compares property values before and after an update by their dictionary data type, so that values
+ * which are re-saved unchanged (an MLText with the same translations, a Date with the same instant,
+ * an unchanged list sent again by a form) are not treated as changes.
+ * <p>
+ * Comparators are keyed by data type and built once per dictionary (re)load, the data type of each
+ * property is looked up on first use and cached.
+ */
+public class PropertyValueComparatorRegistry
+{
+    /**
+     * Decides whether two values of a property are the same.
+     */
+    public interface PropertyValueComparator
+    {
+        boolean isEqual(Serializable before, Serializable after);
+    }
+
+    /** Used for unknown properties and data types without a dedicated comparator */
+    private static final PropertyValueComparator DEFAULT_COMPARATOR = new PropertyValueComparator()
+    {
+        @Override
+        public boolean isEqual(Serializable before, Serializable after)
+        {
+            return EqualsHelper.nullSafeEquals(before, after);
+        }
+    };
+
+    private static final PropertyValueComparator TEXT_COMPARATOR = new PropertyValueComparator()
+    {
+        @Override
+        public boolean isEqual(Serializable before, Serializable after)
+        {
+            // Forms send an empty string for a property that was never set
+            return EqualsHelper.nullSafeEquals(emptyToNull(before), emptyToNull(after));
+        }
+    };
+
+    private static final PropertyValueComparator MLTEXT_COMPARATOR = new PropertyValueComparator()
+    {
+        @Override
+        public boolean isEqual(Serializable before, Serializable after)
+        {
+            return EqualsHelper.nullSafeEquals(toTranslations(before), toTranslations(after));
+        }
+    };
+
+    private static final PropertyValueComparator DATE_COMPARATOR = new PropertyValueComparator()
+    {
+        @Override
+        public boolean isEqual(Serializable before, Serializable after)
+        {
+            // java.sql.Timestamp and java.util.Date with the same instant are not equal()
+            if (before instanceof Date && after instanceof Date)
+            {
+                return ((Date) before).getTime() == ((Date) after).getTime();
+            }
+            return EqualsHelper.nullSafeEquals(before, after);
+        }
+    };
+
+    private static final PropertyValueComparator INTEGRAL_COMPARATOR = new PropertyValueComparator()
+    {
+        @Override
+        public boolean isEqual(Serializable before, Serializable after)
+        {
+            if (before instanceof Number && after instanceof Number)
+            {
+                return ((Number) before).longValue() == ((Number) after).longValue();
+            }
+            return EqualsHelper.nullSafeEquals(before, after);
+        }
+    };
+
+    private static final PropertyValueComparator DECIMAL_COMPARATOR = new PropertyValueComparator()
+    {
+        @Override
+        public boolean isEqual(Serializable before, Serializable after)
+        {
+            if (before instanceof Number && after instanceof Number)
+            {
+                return Double.compare(((Number) before).doubleValue(), ((Number) after).doubleValue()) == 0;
+            }
+            return EqualsHelper.nullSafeEquals(before, after);
+        }
+    };
+
+    private final DictionaryDAO dictionaryDAO;
+    private final Map<QName, PropertyValueComparator> comparatorsByDataType;
+    private final Map<QName, PropertyValueComparator> comparatorsByProperty = new ConcurrentHashMap<>();
+
+    public PropertyValueComparatorRegistry(DictionaryDAO dictionaryDAO)
+    {
+        this.dictionaryDAO = dictionaryDAO;
+
+        Map<QName, PropertyValueComparator> comparators = new HashMap<>();
+        comparators.put(DataTypeDefinition.TEXT, TEXT_COMPARATOR);
+        comparators.put(DataTypeDefinition.MLTEXT, MLTEXT_COMPARATOR);
+        comparators.put(DataTypeDefinition.DATE, DATE_COMPARATOR);
+        comparators.put(DataTypeDefinition.DATETIME, DATE_COMPARATOR);
+        comparators.put(DataTypeDefinition.INT, INTEGRAL_COMPARATOR);
+        comparators.put(DataTypeDefinition.LONG, INTEGRAL_COMPARATOR);
+        comparators.put(DataTypeDefinition.FLOAT, DECIMAL_COMPARATOR);
+        comparators.put(DataTypeDefinition.DOUBLE, DECIMAL_COMPARATOR);
+        this.comparatorsByDataType = Collections.unmodifiableMap(comparators);
+    }
+
+    /**
+     * @param propQName QName
+     * @param before Serializable
+     * @param after Serializable
+     * @return          true if the property value did not change
+     */
+    public boolean isEqual(QName propQName, Serializable before, Serializable after)
+    {
+        if (before == after)
+        {
+            return true;
+        }
+        PropertyValueComparator comparator = getComparator(propQName);
+        if (before instanceof Collection || after instanceof Collection)
+        {
+            return isEqualCollections(comparator, toCollection(before), toCollection(after));
+        }
+        return comparator.isEqual(before, after);
+    }
+
+    private PropertyValueComparator getComparator(QName propQName)
+    {
+        PropertyValueComparator comparator = comparatorsByProperty.get(propQName);
+        if (comparator == null)
+        {
+            comparator = DEFAULT_COMPARATOR;
+            PropertyDefinition propDef = dictionaryDAO.getProperty(propQName);
+            if (propDef != null && comparatorsByDataType.containsKey(propDef.getDataType().getName()))
+            {
+                comparator = comparatorsByDataType.get(propDef.getDataType().getName());
+            }
+            comparatorsByProperty.put(propQName, comparator);
+        }
+        return comparator;
+    }
+
+    private static boolean isEqualCollections(PropertyValueComparator comparator, Collection<?> before, Collection<?> after)
+    {
+        if (before.size() != after.size())
+        {
+            return false;
+        }
+        Iterator<?> beforeIt = before.iterator();
+        Iterator<?> afterIt = after.iterator();
+        while (beforeIt.hasNext())
+        {
+            if (!comparator.isEqual((Serializable) beforeIt.next(), (Serializable) afterIt.next()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A missing multi-valued property and an empty list are the same, as are a single value and a list of one.
+     */
+    private static Collection<?> toCollection(Serializable value)
+    {
+        if (value == null)
+        {
+            return Collections.emptyList();
+        }
+        if (value instanceof Collection)
+        {
+            return (Collection<?>) value;
+        }
+        return Collections.singletonList(value);
+    }
+
+    private static Serializable emptyToNull(Serializable value)
+    {
+        if (value instanceof String && ((String) value).isEmpty())
+        {
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * Reduces an MLText, or a plain string stored in a d:mltext property, to its non-empty translations.
+     */
+    private static Map<Locale, String> toTranslations(Serializable value)
+    {
+        if (value == null)
+        {
+            return Collections.emptyMap();
+        }
+        if (value instanceof MLText)
+        {
+            Map<Locale, String> translations = new HashMap<>();
+            for (Map.Entry<Locale, String> entry : ((MLText) value).entrySet())
+            {
+                if (entry.getValue() != null && !entry.getValue().isEmpty())
+                {
+                    translations.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return translations;
+        }
+        String text = value.toString();
+        if (text.isEmpty())
+        {
+            return Collections.emptyMap();
+        }
+        return toTranslations(new MLText(text));
+    }
+}
@@ -0,0 +1,51 @@
+package com.itdhq.metadataversioning;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import org.alfresco.service.cmr.version.Version;
+
+/**
+ * Lightweight, immutable view of a {@link Version} for history listings.
+ */
+public class VersionSummary implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String label;
+    private final Date created;
+    private final String creator;
+    private final String description;
+    private final VersionTrigger trigger;
+
+    public VersionSummary(String label, Date created, String creator, String description, VersionTrigger trigger)
+    {
+        this.label = label;
+        this.created = created;
+        this.creator = creator;
+        this.description = description;
+        this.trigger = trigger;
+    }
+
+    public static VersionSummary fromVersion(Version version)
+    {
+        return new VersionSummary(
+                version.getVersionLabel(),
+                version.getCreatedDate(),
+                version.getCreator(),
+                version.getDescription(),
+                VersionTrigger.fromValue(version.getVersionProperty(VersionTrigger.PROP_VERSION_TRIGGER)));
+    }
+
+    public String getLabel() { return label; }
+    public Date getCreated() { return created == null ? null : new Date(created.getTime()); }
+    public String getCreator() { return creator; }
+    public String getDescription() { return description; }
+    public VersionTrigger getTrigger() { return trigger; }
+
+    @Override
+    public String toString()
+    {
+        return "VersionSummary[label=" + label + ", created=" + created + ", creator=" + creator + ", trigger=" + trigger + "]";
+    }
+}
@@ -0,0 +1,548 @@
+package com.itdhq.metadataversioning;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.permissions.AccessDeniedException;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.repo.version.VersionServicePolicies;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.cmr.version.Version;
+import org.alfresco.service.cmr.version.VersionHistory;
+import org.alfresco.service.cmr.version.VersionService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.EqualsHelper;
+import org.alfresco.util.GUID;
+import org.alfresco.util.Pair;
+import org.apache.log4j.Logger;
+
+/**
+ * Paged read access to version histories.
+ * <p>
+ * The newest {@code maxCachedSummaries} version summaries of a node are kept in the
+ * <b>cache.versionSummaryCache</b> shared cache, so the cache holds at most that many summaries per node
+ * (twice as many between trims). The service binds its own <b>cm:versionable</b> behaviours, independent
+ * of auto-versioning, for created versions and deleted histories; the cached entries are updated once
+ * the transaction commits and the cluster invalidates them on the other servers. Deleting a single version
+ * raises no policy, such changes are picked up when the entry expires (cache.versionSummaryCache.timeToLiveSeconds).
+ * Only a cache miss or a page beyond the cached summaries builds the full version history.
+ */
+public class VersionSummaryService
+    implements VersionServicePolicies.AfterCreateVersionPolicy,
+        NodeServicePolicies.BeforeAddAspectPolicy,
+        NodeServicePolicies.OnRemoveAspectPolicy,
+        NodeServicePolicies.OnDeleteNodePolicy
+{
+    private Logger logger = Logger.getLogger(VersionSummaryService.class);
+
+    /** Transaction resource key */
+    private static final String KEY_PENDING_CHANGES = "version_summary_pending_changes";
+
+    private static final int LOCK_STRIPES = 64;
+    /** Pending changes kept per transaction, beyond it the whole cache is cleared on commit */
+    private static final int MAX_PENDING_CHANGES = 1000;
+
+    private PolicyComponent policyComponent;
+    private VersionService versionService;
+    private PermissionService permissionService;
+    /** Holds a {@link CachedHistory} or, while a history is being read, a {@link LoadToken} */
+    private SimpleCache<NodeRef, Serializable> versionSummaryCache;
+    private int maxCachedSummaries = 100;
+
+    /** Serialize the check-and-put of a node's cache entry on this server */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public VersionSummaryService()
+    {
+        for (int i = 0; i < locks.length; i++)
+        {
+            locks[i] = new Object();
+        }
+    }
+
+    public void setPolicyComponent(PolicyComponent policyComponent) { this.policyComponent = policyComponent; }
+    public void setVersionService(VersionService versionService) { this.versionService = versionService; }
+    public void setPermissionService(PermissionService permissionService) { this.permissionService = permissionService; }
+    public void setVersionSummaryCache(SimpleCache<NodeRef, Serializable> versionSummaryCache) { this.versionSummaryCache = versionSummaryCache; }
+    public void setMaxCachedSummaries(int maxCachedSummaries) { this.maxCachedSummaries = maxCachedSummaries; }
+
+    /**
+     * Bind the behaviours keeping the cache up to date
+     */
+    public void init()
+    {
+        this.policyComponent.bindClassBehaviour(
+                QName.createQName(NamespaceService.ALFRESCO_URI, "afterCreateVersion"),
+                ContentModel.ASPECT_VERSIONABLE,
+                new JavaBehaviour(this, "afterCreateVersion", Behaviour.NotificationFrequency.EVERY_EVENT));
+
+        this.policyComponent.bindClassBehaviour(
+                QName.createQName(NamespaceService.ALFRESCO_URI, "beforeAddAspect"),
+                ContentModel.ASPECT_VERSIONABLE,
+                new JavaBehaviour(this, "beforeAddAspect", Behaviour.NotificationFrequency.EVERY_EVENT));
+
+        this.policyComponent.bindClassBehaviour(
+                QName.createQName(NamespaceService.ALFRESCO_URI, "onRemoveAspect"),
+                ContentModel.ASPECT_VERSIONABLE,
+                new JavaBehaviour(this, "onRemoveAspect", Behaviour.NotificationFrequency.EVERY_EVENT));
+
+        this.policyComponent.bindClassBehaviour(
+                QName.createQName(NamespaceService.ALFRESCO_URI, "onDeleteNode"),
+                ContentModel.ASPECT_VERSIONABLE,
+                new JavaBehaviour(this, "onDeleteNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+    }
+
+    /**
+     * Gets a page of the version summaries of a node, newest first.
+     *
+     * @param nodeRef NodeRef
+     * @param pagingRequest PagingRequest
+     * @return          the requested page, empty if the node has no version history
+     */
+    public PagingResults<VersionSummary> getVersionSummaries(NodeRef nodeRef, PagingRequest pagingRequest)
+    {
+        if (permissionService.hasPermission(nodeRef, PermissionService.READ) != AccessStatus.ALLOWED)
+        {
+            throw new AccessDeniedException("Read access to the version history of " + nodeRef + " denied");
+        }
+
+        Serializable cached = versionSummaryCache.get(nodeRef);
+        if (cached instanceof CachedHistory)
+        {
+            CachedHistory history = (CachedHistory) cached;
+            int from = getFrom(pagingRequest, history.totalCount);
+            int to = getTo(pagingRequest, from, history.totalCount);
+            if (to <= history.cachedCount)
+            {
+                return toPagingResults(history.getSummaries(from, to), to < history.totalCount, history.totalCount, pagingRequest);
+            }
+        }
+
+        // Not cached or the page is beyond the cached summaries
+        List<VersionSummary> summaries = loadSummaries(nodeRef);
+        int total = summaries.size();
+        int from = getFrom(pagingRequest, total);
+        int to = getTo(pagingRequest, from, total);
+        return toPagingResults(new ArrayList<VersionSummary>(summaries.subList(from, to)), to < total, total, pagingRequest);
+    }
+
+    /**
+     * Prepends the summary of a new version to a cached entry once the current transaction commits,
+     * entries of nodes that are not cached yet are dropped after commit.
+     *
+     * @see org.alfresco.repo.version.VersionServicePolicies.AfterCreateVersionPolicy#afterCreateVersion(org.alfresco.service.cmr.repository.NodeRef, org.alfresco.service.cmr.version.Version)
+     */
+    @Override
+    public void afterCreateVersion(NodeRef versionableNode, Version version)
+    {
+        getPendingChanges().versionCreated(versionableNode, version);
+    }
+
+    /**
+     * A history left over by a node that lost <b>cm:versionable</b> is deleted when the aspect is added again.
+     */
+    @Override
+    public void beforeAddAspect(NodeRef nodeRef, QName aspectTypeQName)
+    {
+        versionHistoryDeleted(nodeRef);
+    }
+
+    @Override
+    public void onRemoveAspect(NodeRef nodeRef, QName aspectTypeQName)
+    {
+        versionHistoryDeleted(nodeRef);
+    }
+
+    /**
+     * The node is gone from its store whether or not it is archived, so its cached summaries are dropped.
+     */
+    @Override
+    public void onDeleteNode(ChildAssociationRef childAssocRef, boolean isNodeArchived)
+    {
+        versionHistoryDeleted(childAssocRef.getChildRef());
+    }
+
+    private void versionHistoryDeleted(NodeRef nodeRef)
+    {
+        invalidate(Collections.singleton(nodeRef));
+        // Drop them again after commit in case a concurrent read cached the old history
+        getPendingChanges().invalidate(nodeRef);
+    }
+
+    private static int getFrom(PagingRequest pagingRequest, int total)
+    {
+        return Math.min(Math.max(pagingRequest.getSkipCount(), 0), total);
+    }
+
+    private static int getTo(PagingRequest pagingRequest, int from, int total)
+    {
+        return (pagingRequest.getMaxItems() < 0) ? total : (int) Math.min((long) from + pagingRequest.getMaxItems(), total);
+    }
+
+    private static PagingResults<VersionSummary> toPagingResults(final List<VersionSummary> page, final boolean hasMoreItems,
+            int total, PagingRequest pagingRequest)
+    {
+        final Pair<Integer, Integer> totalCount = new Pair<Integer, Integer>(total, total);
+        final String queryExecutionId = pagingRequest.getQueryExecutionId();
+
+        return new PagingResults<VersionSummary>()
+        {
+            @Override
+            public List<VersionSummary> getPage() { return page; }
+
+            @Override
+            public boolean hasMoreItems() { return hasMoreItems; }
+
+            @Override
+            public Pair<Integer, Integer> getTotalResultCount() { return totalCount; }
+
+            @Override
+            public String getQueryExecutionId() { return queryExecutionId; }
+        };
+    }
+
+    private List<VersionSummary> loadSummaries(NodeRef nodeRef)
+    {
+        // Histories read in a transaction with pending changes are not committed yet, don't cache them
+        LoadToken loadToken = null;
+        if (AlfrescoTransactionSupport.getResource(KEY_PENDING_CHANGES) == null)
+        {
+            synchronized (lockFor(nodeRef))
+            {
+                // Keep a cached head that is merely too short for the requested page
+                if (!(versionSummaryCache.get(nodeRef) instanceof CachedHistory))
+                {
+                    loadToken = new LoadToken();
+                    versionSummaryCache.put(nodeRef, loadToken);
+                }
+            }
+        }
+
+        List<VersionSummary> summaries;
+        VersionHistory versionHistory = versionService.getVersionHistory(nodeRef);
+        if (versionHistory == null)
+        {
+            summaries = Collections.emptyList();
+        }
+        else
+        {
+            Collection<Version> versions = versionHistory.getAllVersions();
+            summaries = new ArrayList<VersionSummary>(versions.size());
+            for (Version version : versions)
+            {
+                summaries.add(VersionSummary.fromVersion(version));
+            }
+        }
+
+        if (loadToken != null)
+        {
+            synchronized (lockFor(nodeRef))
+            {
+                // A change to this node while reading replaced or removed the token, the result may be stale
+                if (loadToken.equals(versionSummaryCache.get(nodeRef)))
+                {
+                    versionSummaryCache.put(nodeRef, CachedHistory.of(summaries, maxCachedSummaries));
+                }
+            }
+        }
+        return summaries;
+    }
+
+    private void invalidate(Set<NodeRef> nodeRefs)
+    {
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            synchronized (lockFor(nodeRef))
+            {
+                versionSummaryCache.remove(nodeRef);
+            }
+        }
+    }
+
+    /**
+     * Prepends the versions created by a committed transaction if the cached head is still the predecessor
+     * of the first one, otherwise drops the entry.
+     */
+    private void applyCreated(NodeRef nodeRef, PendingVersions pendingVersions)
+    {
+        synchronized (lockFor(nodeRef))
+        {
+            Serializable cached = versionSummaryCache.get(nodeRef);
+            if (cached instanceof CachedHistory)
+            {
+                CachedHistory history = (CachedHistory) cached;
+                if (EqualsHelper.nullSafeEquals(pendingVersions.predecessorLabel, history.getHeadLabel())
+                        && !history.containsAnyLabel(pendingVersions.summaries))
+                {
+                    for (VersionSummary summary : pendingVersions.summaries)
+                    {
+                        history = history.prepend(summary, maxCachedSummaries);
+                    }
+                    versionSummaryCache.put(nodeRef, history);
+                    return;
+                }
+            }
+            // Cached by a read that already saw (some of) the versions, or a read in progress that may have missed them
+            if (cached != null)
+            {
+                versionSummaryCache.remove(nodeRef);
+            }
+        }
+    }
+
+    private Object lockFor(NodeRef nodeRef)
+    {
+        return locks[(nodeRef.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    private PendingChanges getPendingChanges()
+    {
+        PendingChanges pendingChanges = (PendingChanges) AlfrescoTransactionSupport.getResource(KEY_PENDING_CHANGES);
+        if (pendingChanges == null)
+        {
+            pendingChanges = new PendingChanges();
+            AlfrescoTransactionSupport.bindResource(KEY_PENDING_CHANGES, pendingChanges);
+            AlfrescoTransactionSupport.bindListener(pendingChanges);
+        }
+        return pendingChanges;
+    }
+
+    /**
+     * Cache changes made by a transaction, applied after it commits and discarded on rollback.
+     * Holds at most {@link #MAX_PENDING_CHANGES} entries however many nodes the transaction versions.
+     */
+    private class PendingChanges extends TransactionListenerAdapter
+    {
+        /** Versions of nodes cached when first versioned in this transaction, oldest first */
+        private final Map<NodeRef, PendingVersions> created = new HashMap<NodeRef, PendingVersions>();
+        /** Nodes whose entries are dropped after commit */
+        private final Set<NodeRef> invalidated = new HashSet<NodeRef>();
+        private int size = 0;
+        private boolean overflow = false;
+
+        void versionCreated(NodeRef nodeRef, Version version)
+        {
+            if (overflow || invalidated.contains(nodeRef))
+            {
+                return;
+            }
+            PendingVersions pendingVersions = created.get(nodeRef);
+            if (pendingVersions == null)
+            {
+                Serializable cached = versionSummaryCache.get(nodeRef);
+                if (!(cached instanceof CachedHistory))
+                {
+                    // A read may cache the history before this transaction commits
+                    invalidate(nodeRef);
+                    return;
+                }
+                pendingVersions = new PendingVersions(((CachedHistory) cached).getHeadLabel());
+                created.put(nodeRef, pendingVersions);
+            }
+            if (pendingVersions.summaries.size() >= maxCachedSummaries)
+            {
+                invalidate(nodeRef);
+                return;
+            }
+            pendingVersions.summaries.add(VersionSummary.fromVersion(version));
+            grow();
+        }
+
+        void invalidate(NodeRef nodeRef)
+        {
+            if (overflow)
+            {
+                return;
+            }
+            PendingVersions pendingVersions = created.remove(nodeRef);
+            if (pendingVersions != null)
+            {
+                size -= pendingVersions.summaries.size();
+            }
+            if (invalidated.add(nodeRef))
+            {
+                grow();
+            }
+        }
+
+        private void grow()
+        {
+            if (++size > MAX_PENDING_CHANGES)
+            {
+                overflow = true;
+                created.clear();
+                invalidated.clear();
+            }
+        }
+
+        @Override
+        public void afterCommit()
+        {
+            if (overflow)
+            {
+                versionSummaryCache.clear();
+                logger.debug("Too many version summary changes in one transaction, cache cleared");
+                return;
+            }
+            VersionSummaryService.this.invalidate(invalidated);
+            for (Map.Entry<NodeRef, PendingVersions> entry : created.entrySet())
+            {
+                applyCreated(entry.getKey(), entry.getValue());
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Version summaries updated: " + created.size() + " prepended, " + invalidated.size() + " dropped");
+            }
+        }
+    }
+
+    /**
+     * Versions created for one cached node in a transaction.
+     */
+    private static final class PendingVersions
+    {
+        /** Head of the cached history when the first version was created, the predecessor of that version */
+        private final String predecessorLabel;
+        private final List<VersionSummary> summaries = new ArrayList<VersionSummary>(2);
+
+        PendingVersions(String predecessorLabel)
+        {
+            this.predecessorLabel = predecessorLabel;
+        }
+    }
+
+    /**
+     * Marks a node whose history is being read. Any change to the node replaces or removes it,
+     * so the read result is cached only if the token is still in place.
+     */
+    private static final class LoadToken implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String id = GUID.generate();
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof LoadToken && id.equals(((LoadToken) obj).id);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return id.hashCode();
+        }
+    }
+
+    /**
+     * Immutable head of a version history, newest first. New versions are linked in front of the
+     * shared chain; the chain is trimmed back to the limit once it grows to twice the limit.
+     */
+    private static final class CachedHistory implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Entry head;
+        private final int cachedCount;
+        private final int totalCount;
+
+        private CachedHistory(Entry head, int cachedCount, int totalCount)
+        {
+            this.head = head;
+            this.cachedCount = cachedCount;
+            this.totalCount = totalCount;
+        }
+
+        static CachedHistory of(List<VersionSummary> summaries, int limit)
+        {
+            int count = Math.min(summaries.size(), limit);
+            Entry head = null;
+            for (int i = count - 1; i >= 0; i--)
+            {
+                head = new Entry(summaries.get(i), head);
+            }
+            return new CachedHistory(head, count, summaries.size());
+        }
+
+        CachedHistory prepend(VersionSummary summary, int limit)
+        {
+            CachedHistory history = new CachedHistory(new Entry(summary, head), cachedCount + 1, totalCount + 1);
+            if (history.cachedCount >= limit * 2)
+            {
+                CachedHistory trimmed = of(history.getSummaries(0, limit), limit);
+                return new CachedHistory(trimmed.head, trimmed.cachedCount, history.totalCount);
+            }
+            return history;
+        }
+
+        String getHeadLabel()
+        {
+            return (head == null) ? null : head.summary.getLabel();
+        }
+
+        boolean containsAnyLabel(List<VersionSummary> summaries)
+        {
+            Set<String> labels = new HashSet<String>(summaries.size() * 2);
+            for (VersionSummary summary : summaries)
+            {
+                labels.add(summary.getLabel());
+            }
+            for (Entry entry = head; entry != null; entry = entry.next)
+            {
+                if (labels.contains(entry.summary.getLabel()))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        List<VersionSummary> getSummaries(int from, int to)
+        {
+            List<VersionSummary> summaries = new ArrayList<VersionSummary>(Math.max(to - from, 0));
+            Entry entry = head;
+            for (int i = 0; i < to && entry != null; i++, entry = entry.next)
+            {
+                if (i >= from)
+                {
+                    summaries.add(entry.summary);
+                }
+            }
+            return summaries;
+        }
+
+        private static final class Entry implements Serializable
+        {
+            private static final long serialVersionUID = 1L;
+
+            private final VersionSummary summary;
+            private final Entry next;
+
+            Entry(VersionSummary summary, Entry next)
+            {
+                this.summary = summary;
+                this.next = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.itdhq.metadataversioning;
+
+/**
+ * What caused a version to be created. Auto-versions store it in the
+ * {@link #PROP_VERSION_TRIGGER} version property, versions without it are {@link #MANUAL}.
+ */
+public enum VersionTrigger
+{
+    INITIAL,
+    CONTENT,
+    PROPERTIES,
+    ASSOCIATIONS,
+    CHILD_ASSOCIATIONS,
+    MANUAL;
+
+    /** Version property holding the trigger name */
+    public static final String PROP_VERSION_TRIGGER = "autoVersionTrigger";
+
+    /**
+     * @param value the stored version property value, may be null
+     * @return          the trigger, {@link #MANUAL} if unknown
+     */
+    public static VersionTrigger fromValue(Object value)
+    {
+        if (value != null)
+        {
+            for (VersionTrigger trigger : values())
+            {
+                if (trigger.name().equals(value.toString()))
+                {
+                    return trigger;
+                }
+            }
+        }
+        return MANUAL;
+    }
+}
@@ -0,0 +1,459 @@
+package com.itdhq.metadataversioning;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.version.VersionService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.Logger;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+
+/**
+ * Finds <b>cm:versionable</b> nodes of {@code storeRef} with <b>cm:initialVersion</b> set that have no version
+ * history (e.g. imported with behaviours disabled or restored from backup) and creates their initial versions.
+ * <p>
+ * Node ids are walked in ranges of {@code rangeSize}. Each range is processed by a {@link BatchProcessor}
+ * with {@code workerThreads} threads and {@code batchSize} nodes per transaction. The checkpoint is stored
+ * with the {@link AttributeService} after every range and does not move past a range with failed nodes,
+ * so the next run resumes there. {@code maxNodesPerSecond} throttles version creation.
+ * <p>
+ * A cluster-wide job lock, refreshed in the background, ensures a single run at a time; if it is lost
+ * the run stops without moving the checkpoint further. Runs are started over JMX
+ * ({@link VersionableNodesReconcilerMBean}) or by the disabled by default cron trigger.
+ */
+public class VersionableNodesReconciler implements VersionableNodesReconcilerMBean, ApplicationEventPublisherAware
+{
+    private Logger logger = Logger.getLogger(VersionableNodesReconciler.class);
+
+    private static final String ATTR_APP_KEY = "alfresco-auto-version-metadata-repo";
+    private static final String ATTR_CHECKPOINT = "reconcilerLastNodeId";
+    private static final QName LOCK_QNAME = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, "VersionableNodesReconciler");
+    private static final long LOCK_TTL = 60000L;
+
+    /** Transaction resource key */
+    private static final String KEY_CREATED_VERSIONS = "reconciler_created_versions";
+
+    private MetadataAutoVersioning metadataAutoVersioning;
+    private NodeDAO nodeDAO;
+    private NodeService nodeService;
+    private VersionService versionService;
+    private TransactionService transactionService;
+    private AttributeService attributeService;
+    private JobLockService jobLockService;
+    private ApplicationEventPublisher applicationEventPublisher;
+    private int workerThreads = 4;
+    private int batchSize = 100;
+    private long rangeSize = 10000L;
+    private int maxNodesPerSecond = 0;
+    private StoreRef storeRef = StoreRef.STORE_REF_WORKSPACE_SPACESSTORE;
+
+    private final Object rateLock = new Object();
+    private long nextPermitNanos = 0L;
+
+    public void setMetadataAutoVersioning(MetadataAutoVersioning metadataAutoVersioning) { this.metadataAutoVersioning = metadataAutoVersioning; }
+    public void setNodeDAO(NodeDAO nodeDAO) { this.nodeDAO = nodeDAO; }
+    public void setNodeService(NodeService nodeService) { this.nodeService = nodeService; }
+    public void setVersionService(VersionService versionService) { this.versionService = versionService; }
+    public void setTransactionService(TransactionService transactionService) { this.transactionService = transactionService; }
+    public void setAttributeService(AttributeService attributeService) { this.attributeService = attributeService; }
+    public void setJobLockService(JobLockService jobLockService) { this.jobLockService = jobLockService; }
+    public void setWorkerThreads(int workerThreads) { this.workerThreads = workerThreads; }
+    public void setBatchSize(int batchSize) { this.batchSize = batchSize; }
+    public void setRangeSize(long rangeSize) { this.rangeSize = rangeSize; }
+    public void setMaxNodesPerSecond(int maxNodesPerSecond) { this.maxNodesPerSecond = maxNodesPerSecond; }
+    public void setStoreRef(String storeRef) { this.storeRef = new StoreRef(storeRef); }
+
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher)
+    {
+        this.applicationEventPublisher = applicationEventPublisher;
+    }
+
+    /**
+     * Runs the reconciliation, resuming from the last checkpoint if a previous run was interrupted.
+     *
+     * @return          the number of initial versions created, 0 if a run is already in progress in the cluster
+     */
+    @Override
+    public int reconcile()
+    {
+        String lockToken = getLock();
+        if (lockToken == null)
+        {
+            return 0;
+        }
+        final ReconcileRun run = new ReconcileRun();
+        try
+        {
+            jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL, run);
+            return AuthenticationUtil.runAsSystem(new RunAsWork<Integer>()
+            {
+                @Override
+                public Integer doWork() throws Exception
+                {
+                    return reconcileImpl(run);
+                }
+            });
+        }
+        finally
+        {
+            run.active = false;
+            jobLockService.releaseLock(lockToken, LOCK_QNAME);
+        }
+    }
+
+    /**
+     * Forgets the stored checkpoint, so the next run walks the whole store again.
+     * Does nothing while a run is in progress in the cluster.
+     */
+    @Override
+    public void resetCheckpoint()
+    {
+        String lockToken = getLock();
+        if (lockToken == null)
+        {
+            return;
+        }
+        try
+        {
+            removeCheckpoint();
+        }
+        finally
+        {
+            jobLockService.releaseLock(lockToken, LOCK_QNAME);
+        }
+    }
+
+    /**
+     * @return          the lock token or null if another run holds the lock
+     */
+    private String getLock()
+    {
+        try
+        {
+            return jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+        }
+        catch (LockAcquisitionException e)
+        {
+            logger.warn("Versionable nodes reconciliation is already running, ignoring request");
+            return null;
+        }
+    }
+
+    private void removeCheckpoint()
+    {
+        final RetryingTransactionHelper txnHelper = transactionService.getRetryingTransactionHelper();
+        txnHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
+        {
+            @Override
+            public Void execute() throws Throwable
+            {
+                attributeService.removeAttribute(ATTR_APP_KEY, ATTR_CHECKPOINT);
+                return null;
+            }
+        }, false, true);
+    }
+
+    private int reconcileImpl(ReconcileRun run)
+    {
+        final RetryingTransactionHelper txnHelper = transactionService.getRetryingTransactionHelper();
+
+        Long checkpoint = txnHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Long>()
+        {
+            @Override
+            public Long execute() throws Throwable
+            {
+                return (Long) attributeService.getAttribute(ATTR_APP_KEY, ATTR_CHECKPOINT);
+            }
+        }, true, true);
+        Long maxNodeId = txnHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Long>()
+        {
+            @Override
+            public Long execute() throws Throwable
+            {
+                return nodeDAO.getMaxNodeId();
+            }
+        }, true, true);
+        if (maxNodeId == null)
+        {
+            return 0;
+        }
+
+        long fromId = (checkpoint == null) ? 0L : checkpoint.longValue();
+        logger.info("Reconciling versionable nodes from node id " + fromId + " to " + maxNodeId);
+
+        int failed = 0;
+        Long failedFrom = null;
+        while (fromId <= maxNodeId && !run.lockLost)
+        {
+            final long rangeFrom = fromId;
+            final long rangeTo = Math.min(fromId + rangeSize, maxNodeId + 1);
+
+            List<NodeRef> candidates = txnHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<List<NodeRef>>()
+            {
+                @Override
+                public List<NodeRef> execute() throws Throwable
+                {
+                    final List<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+                    nodeDAO.getNodesWithAspects(
+                            Collections.singleton(ContentModel.ASPECT_VERSIONABLE),
+                            rangeFrom, rangeTo,
+                            new NodeDAO.NodeRefQueryCallback()
+                            {
+                                @Override
+                                public boolean handle(Pair<Long, NodeRef> nodePair)
+                                {
+                                    // Skip archived nodes and frozen nodes of the version store
+                                    if (storeRef.equals(nodePair.getSecond().getStoreRef()))
+                                    {
+                                        nodeRefs.add(nodePair.getSecond());
+                                    }
+                                    return true;
+                                }
+                            });
+                    return nodeRefs;
+                }
+            }, true, true);
+
+            int rangeErrors = 0;
+            if (!candidates.isEmpty())
+            {
+                rangeErrors = processRange(txnHelper, candidates, run);
+            }
+            if (run.lockLost)
+            {
+                // Nodes of this range may have been skipped, keep the checkpoint before it
+                break;
+            }
+            fromId = rangeTo;
+
+            if (rangeErrors > 0)
+            {
+                failed += rangeErrors;
+                if (failedFrom == null)
+                {
+                    failedFrom = rangeFrom;
+                }
+            }
+            else if (failedFrom == null)
+            {
+                final Long nextCheckpoint = fromId;
+                txnHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>()
+                {
+                    @Override
+                    public Void execute() throws Throwable
+                    {
+                        attributeService.setAttribute(nextCheckpoint, ATTR_APP_KEY, ATTR_CHECKPOINT);
+                        return null;
+                    }
+                }, false, true);
+            }
+        }
+
+        int created = run.created.get();
+        if (run.lockLost)
+        {
+            logger.warn("Versionable nodes reconciliation stopped, the job lock was lost. " + created
+                    + " initial versions created, " + failed + " nodes failed");
+        }
+        else if (failedFrom == null)
+        {
+            // A full walk has completed, the next run starts from the beginning
+            removeCheckpoint();
+            logger.info("Versionable nodes reconciliation done, " + created + " initial versions created");
+        }
+        else
+        {
+            logger.warn("Versionable nodes reconciliation done, " + created + " initial versions created, "
+                    + failed + " nodes failed. The next run resumes from node id " + failedFrom);
+        }
+        return created;
+    }
+
+    /**
+     * @return          the number of nodes that failed
+     */
+    private int processRange(RetryingTransactionHelper txnHelper, final List<NodeRef> candidates, final ReconcileRun run)
+    {
+        BatchProcessWorkProvider<NodeRef> workProvider = new BatchProcessWorkProvider<NodeRef>()
+        {
+            private boolean done = false;
+
+            @Override
+            public int getTotalEstimatedWorkSize()
+            {
+                return candidates.size();
+            }
+
+            @Override
+            public Collection<NodeRef> getNextWork()
+            {
+                if (done)
+                {
+                    return Collections.emptyList();
+                }
+                done = true;
+                return candidates;
+            }
+        };
+
+        BatchProcessor<NodeRef> batchProcessor = new BatchProcessor<NodeRef>(
+                "VersionableNodesReconciler",
+                txnHelper,
+                workProvider,
+                workerThreads,
+                batchSize,
+                applicationEventPublisher,
+                LogFactory.getLog(VersionableNodesReconciler.class),
+                1000);
+
+        batchProcessor.process(new BatchProcessor.BatchProcessWorkerAdaptor<NodeRef>()
+        {
+            @Override
+            public void beforeProcess() throws Throwable
+            {
+                AuthenticationUtil.setRunAsUserSystem();
+            }
+
+            @Override
+            public void process(NodeRef nodeRef) throws Throwable
+            {
+                // Once the lock is lost the remaining nodes are skipped, draining the batch processor
+                if (run.lockLost == false && needsInitialVersion(nodeRef))
+                {
+                    acquirePermit();
+                    metadataAutoVersioning.createInitialVersion(nodeRef);
+                    countAfterCommit(run);
+                    logger.debug("Created missing initial version for " + nodeRef);
+                }
+            }
+
+            @Override
+            public void afterProcess() throws Throwable
+            {
+                AuthenticationUtil.clearCurrentSecurityContext();
+            }
+        }, true);
+
+        return batchProcessor.getTotalErrors();
+    }
+
+    /**
+     * Counts a created version once the batch transaction commits, rolled back or retried batches are not counted.
+     */
+    private void countAfterCommit(final ReconcileRun run)
+    {
+        AtomicInteger txnCreated = (AtomicInteger) AlfrescoTransactionSupport.getResource(KEY_CREATED_VERSIONS);
+        if (txnCreated == null)
+        {
+            final AtomicInteger counter = new AtomicInteger();
+            AlfrescoTransactionSupport.bindResource(KEY_CREATED_VERSIONS, counter);
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+            {
+                @Override
+                public void afterCommit()
+                {
+                    run.created.addAndGet(counter.get());
+                }
+            });
+            txnCreated = counter;
+        }
+        txnCreated.incrementAndGet();
+    }
+
+    private boolean needsInitialVersion(NodeRef nodeRef)
+    {
+        if (nodeService.exists(nodeRef) == false
+                || nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE) == false)
+        {
+            return false;
+        }
+        Boolean initialVersion = (Boolean) nodeService.getProperty(nodeRef, ContentModel.PROP_INITIAL_VERSION);
+        if (initialVersion != null && initialVersion.booleanValue() == false)
+        {
+            return false;
+        }
+        return versionService.getVersionHistory(nodeRef) == null;
+    }
+
+    /**
+     * Blocks the calling worker until it may create the next version, if {@code maxNodesPerSecond} is set.
+     */
+    private void acquirePermit()
+    {
+        if (maxNodesPerSecond <= 0)
+        {
+            return;
+        }
+        long waitNanos;
+        synchronized (rateLock)
+        {
+            long now = System.nanoTime();
+            long permit = Math.max(now, nextPermitNanos);
+            nextPermitNanos = permit + 1000000000L / maxNodesPerSecond;
+            waitNanos = permit - now;
+        }
+        if (waitNanos > 0)
+        {
+            try
+            {
+                Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new AlfrescoRuntimeException("Versionable nodes reconciliation interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * State of a single run, keeps the job lock refreshed while the run is active.
+     */
+    private static class ReconcileRun implements JobLockRefreshCallback
+    {
+        private volatile boolean active = true;
+        private volatile boolean lockLost = false;
+        private final AtomicInteger created = new AtomicInteger();
+
+        @Override
+        public boolean isActive()
+        {
+            return active;
+        }
+
+        @Override
+        public void lockReleased()
+        {
+            if (active)
+            {
+                lockLost = true;
+            }
+        }
+    }
+}
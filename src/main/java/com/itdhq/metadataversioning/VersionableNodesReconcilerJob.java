@@ -0,0 +1,26 @@
+package com.itdhq.metadataversioning;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Quartz job triggering the {@link VersionableNodesReconciler}.
+ * Its trigger is disabled by default, set <b>versionableNodesReconciler.cronExpression</b> to run it.
+ */
+public class VersionableNodesReconcilerJob implements Job
+{
+    private static final String KEY_RECONCILER = "versionableNodesReconciler";
+
+    @Override
+    public void execute(JobExecutionContext context) throws JobExecutionException
+    {
+        Object reconciler = context.getJobDetail().getJobDataMap().get(KEY_RECONCILER);
+        if (!(reconciler instanceof VersionableNodesReconciler))
+        {
+            throw new AlfrescoRuntimeException("VersionableNodesReconcilerJob data must contain valid '" + KEY_RECONCILER + "' reference");
+        }
+        ((VersionableNodesReconciler) reconciler).reconcile();
+    }
+}
@@ -0,0 +1,20 @@
+package com.itdhq.metadataversioning;
+
+/**
+ * JMX management interface of the {@link VersionableNodesReconciler}, exported as
+ * <b>Alfresco:Name=VersionableNodesReconciler</b>.
+ */
+public interface VersionableNodesReconcilerMBean
+{
+    /**
+     * Runs the reconciliation, resuming from the last checkpoint.
+     *
+     * @return          the number of initial versions created
+     */
+    int reconcile();
+
+    /**
+     * Forgets the stored checkpoint, so the next run walks the whole store again.
+     */
+    void resetCheckpoint();
+}
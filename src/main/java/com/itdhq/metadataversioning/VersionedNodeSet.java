@@ -0,0 +1,158 @@
+package com.itdhq.metadataversioning;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Nodes versioned in the current transaction.
+ * <p>
+ * Nodes are kept by their database id in an open-addressing table of primitive longs, so that
+ * transactions versioning millions of nodes keep a small and flat footprint. Nodes without a known
+ * database id fall back to a plain {@link NodeRef} set.
+ */
+public final class VersionedNodeSet
+{
+    /** Transaction resource key */
+    private static final String KEY_VERSIONED_NODES = "versioned_node_ids";
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long EMPTY = 0L;
+
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private int size = 0;
+    /** 0 marks an empty slot, so it is tracked separately */
+    private boolean containsZero = false;
+    private Set<NodeRef> nodeRefs;
+
+    /** Use {@link #getOrCreate()}, visible for tests */
+    VersionedNodeSet() {}
+
+    /**
+     * @return          the set bound to the current transaction or null if no node was versioned yet
+     */
+    public static VersionedNodeSet get()
+    {
+        return (VersionedNodeSet) AlfrescoTransactionSupport.getResource(KEY_VERSIONED_NODES);
+    }
+
+    /**
+     * @return          the set bound to the current transaction, bound first if needed
+     */
+    public static VersionedNodeSet getOrCreate()
+    {
+        VersionedNodeSet versionedNodes = get();
+        if (versionedNodes == null)
+        {
+            versionedNodes = new VersionedNodeSet();
+            AlfrescoTransactionSupport.bindResource(KEY_VERSIONED_NODES, versionedNodes);
+        }
+        return versionedNodes;
+    }
+
+    /**
+     * @param nodeId Long the node database id or null if unknown
+     * @param nodeRef NodeRef
+     * @return          true if the node was already versioned in this transaction
+     */
+    public boolean contains(Long nodeId, NodeRef nodeRef)
+    {
+        if (nodeId == null)
+        {
+            return nodeRefs != null && nodeRefs.contains(nodeRef);
+        }
+        long id = nodeId.longValue();
+        if (id == EMPTY)
+        {
+            return containsZero;
+        }
+        int mask = ids.length - 1;
+        for (int i = mix(id) & mask; ids[i] != EMPTY; i = (i + 1) & mask)
+        {
+            if (ids[i] == id)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param nodeId Long the node database id or null if unknown
+     * @param nodeRef NodeRef
+     */
+    public void add(Long nodeId, NodeRef nodeRef)
+    {
+        if (nodeId == null)
+        {
+            if (nodeRefs == null)
+            {
+                nodeRefs = new HashSet<NodeRef>();
+            }
+            nodeRefs.add(nodeRef);
+            return;
+        }
+        long id = nodeId.longValue();
+        if (id == EMPTY)
+        {
+            containsZero = true;
+            return;
+        }
+        if (insert(ids, id))
+        {
+            // Keep the load factor at or below 1/2
+            if (++size * 2 > ids.length)
+            {
+                rehash();
+            }
+        }
+    }
+
+    private void rehash()
+    {
+        long[] newIds = new long[ids.length * 2];
+        for (long id : ids)
+        {
+            if (id != EMPTY)
+            {
+                insert(newIds, id);
+            }
+        }
+        ids = newIds;
+    }
+
+    /**
+     * @return          false if the id was already present
+     */
+    private static boolean insert(long[] table, long id)
+    {
+        int mask = table.length - 1;
+        int i = mix(id) & mask;
+        while (table[i] != EMPTY)
+        {
+            if (table[i] == id)
+            {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = id;
+        return true;
+    }
+
+    /**
+     * Spreads sequential database ids over the table (64-bit finalizer of MurmurHash3).
+     */
+    private static int mix(long id)
+    {
+        long h = id;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3f98e8a2d43L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
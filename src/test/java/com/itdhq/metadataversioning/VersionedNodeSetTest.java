@@ -0,0 +1,104 @@
+package com.itdhq.metadataversioning;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VersionedNodeSetTest
+{
+    private VersionedNodeSet versionedNodes;
+
+    @Before
+    public void setUp()
+    {
+        versionedNodes = new VersionedNodeSet();
+    }
+
+    private static NodeRef nodeRef(long id)
+    {
+        return new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "node-" + id);
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        assertFalse(versionedNodes.contains(1L, nodeRef(1)));
+        assertFalse(versionedNodes.contains(0L, nodeRef(0)));
+        assertFalse(versionedNodes.contains(null, nodeRef(1)));
+    }
+
+    @Test
+    public void testAddAcrossRehash()
+    {
+        // Well beyond the initial capacity of 64, forcing several rehashes
+        for (long id = 1; id <= 10000; id++)
+        {
+            versionedNodes.add(id, nodeRef(id));
+            assertTrue(versionedNodes.contains(id, nodeRef(id)));
+        }
+        for (long id = 1; id <= 10000; id++)
+        {
+            assertTrue("Lost id " + id, versionedNodes.contains(id, nodeRef(id)));
+        }
+        for (long id = 10001; id <= 20000; id++)
+        {
+            assertFalse(versionedNodes.contains(id, nodeRef(id)));
+        }
+        assertFalse(versionedNodes.contains(Long.MAX_VALUE, nodeRef(0)));
+        assertFalse(versionedNodes.contains(-1L, nodeRef(0)));
+    }
+
+    @Test
+    public void testZeroId()
+    {
+        versionedNodes.add(5L, nodeRef(5));
+        assertFalse(versionedNodes.contains(0L, nodeRef(0)));
+
+        versionedNodes.add(0L, nodeRef(0));
+        assertTrue(versionedNodes.contains(0L, nodeRef(0)));
+        assertTrue(versionedNodes.contains(5L, nodeRef(5)));
+    }
+
+    @Test
+    public void testDuplicateAdds()
+    {
+        for (int i = 0; i < 1000; i++)
+        {
+            versionedNodes.add(42L, nodeRef(42));
+            versionedNodes.add(0L, nodeRef(0));
+        }
+        assertTrue(versionedNodes.contains(42L, nodeRef(42)));
+        assertTrue(versionedNodes.contains(0L, nodeRef(0)));
+        assertFalse(versionedNodes.contains(43L, nodeRef(43)));
+
+        // Duplicates must not inflate the size, so later adds still fit and are found
+        for (long id = 100; id < 200; id++)
+        {
+            versionedNodes.add(id, nodeRef(id));
+        }
+        for (long id = 100; id < 200; id++)
+        {
+            assertTrue(versionedNodes.contains(id, nodeRef(id)));
+        }
+    }
+
+    @Test
+    public void testNullIdFallback()
+    {
+        NodeRef unknown = nodeRef(7);
+        versionedNodes.add(null, unknown);
+
+        assertTrue(versionedNodes.contains(null, unknown));
+        assertFalse(versionedNodes.contains(null, nodeRef(8)));
+        // Ids and NodeRefs are tracked separately
+        assertFalse(versionedNodes.contains(7L, unknown));
+
+        versionedNodes.add(7L, unknown);
+        assertTrue(versionedNodes.contains(7L, unknown));
+        assertTrue(versionedNodes.contains(null, unknown));
+    }
+}